@@ -1,13 +1,25 @@
 package cassdemo;
 
+import cassdemo.admin.ClinicControl;
+import cassdemo.backend.AppointmentIngestion;
 import cassdemo.backend.BackendException;
 import cassdemo.backend.ClinicBackend;
-import cassdemo.scheduling.AppointmentGeneratorThread;
-import cassdemo.scheduling.AppointmentSchedulerThread;
+import cassdemo.diagnostics.RecordingControl;
+import cassdemo.entities.Doctor;
+import cassdemo.replay.ReplayStats;
+import cassdemo.replay.WorkloadLog;
+import cassdemo.replay.WorkloadRecorder;
+import cassdemo.replay.WorkloadReplayer;
+import cassdemo.scheduling.SchedulingSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.sql.Time;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -21,6 +33,11 @@ public class Main {
     private static int SCHEDULERS_PER_SPECIALTY = 2;
     private static int GENERATOR_THREADS = 2;
     private static int DOCTOR_COUNT = 4;
+    private static int PLANNER_HORIZON_DAYS = 7;
+    private static double PRIORITY_ONE_RESERVE = 0.2;
+    private static int INGESTION_WRITERS = 2;
+    private static int INGESTION_CAPACITY = 10000;
+    private static int INGESTION_MAX_IN_FLIGHT = 8;
 
     public static void main(String[] args) throws BackendException {
         String contactPoint = null;
@@ -30,6 +47,11 @@ public class Main {
         AtomicInteger writeCount = new AtomicInteger(0);
         AtomicInteger anomalyCount = new AtomicInteger(0);
         AtomicInteger successCount = new AtomicInteger(0);
+        String recordingFile = null;
+        String captureFile = null;
+        String replayFile = null;
+        double replaySpeed = 1.0;
+        Long seed = null;
 
         Properties properties = new Properties();
         try {
@@ -41,6 +63,11 @@ public class Main {
             SCHEDULERS_PER_SPECIALTY = Integer.parseInt(properties.getProperty("threads_per_specialty", "2"));
             GENERATOR_THREADS = Integer.parseInt(properties.getProperty("generator_threads", "2"));
             DOCTOR_COUNT = Integer.parseInt(properties.getProperty("doctor_count", "4"));
+            PLANNER_HORIZON_DAYS = Integer.parseInt(properties.getProperty("planner_horizon_days", "7"));
+            PRIORITY_ONE_RESERVE = Double.parseDouble(properties.getProperty("priority_one_reserve", "0.2"));
+            INGESTION_WRITERS = Integer.parseInt(properties.getProperty("ingestion_writers", "2"));
+            INGESTION_CAPACITY = Integer.parseInt(properties.getProperty("ingestion_capacity", "10000"));
+            INGESTION_MAX_IN_FLIGHT = Integer.parseInt(properties.getProperty("ingestion_max_in_flight", "8"));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -60,51 +87,130 @@ public class Main {
             if (arg.startsWith("-d")) {
                 DOCTOR_COUNT = Integer.max(Integer.parseInt(arg.substring(2)), specialties.length);
             }
+            if (arg.startsWith("-r")) {
+                recordingFile = arg.substring(2);
+            }
+            if (arg.startsWith("-c")) {
+                captureFile = arg.substring(2);
+            }
+            if (arg.startsWith("-p")) {
+                replayFile = arg.substring(2);
+            }
+            if (arg.startsWith("-x")) {
+                replaySpeed = Double.parseDouble(arg.substring(2));
+            }
+            if (arg.startsWith("-e")) {
+                seed = Long.parseLong(arg.substring(2));
+            }
         }
 
         logger = LoggerFactory.getLogger(Main.class);
 
+        RecordingControl recordingControl = new RecordingControl();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(recordingControl, new ObjectName("cassdemo:type=Recording"));
+        } catch (JMException e) {
+            logger.error("Could not register recording MBean: {}", e.getMessage());
+        }
+        if (recordingFile != null) {
+            recordingControl.start(recordingFile);
+        }
+
+        WorkloadRecorder workloadRecorder = null;
+        if (captureFile != null) {
+            try {
+                workloadRecorder = new WorkloadRecorder(Paths.get(captureFile));
+            } catch (IOException e) {
+                logger.error("Could not open workload log {}: {}", captureFile, e.getMessage());
+            }
+        }
+        WorkloadLog workloadLog = null;
+        if (replayFile != null) {
+            try {
+                workloadLog = WorkloadLog.read(Paths.get(replayFile));
+            } catch (IOException e) {
+                logger.error("Could not read workload log {}: {}", replayFile, e.getMessage());
+                System.exit(1);
+            }
+            GENERATOR_THREADS = 0;
+        }
+
         ClinicBackend backend = new ClinicBackend(contactPoint, keyspace, readCount, writeCount);
 
         System.out.print("\033[H\033[2J");
-        addDoctors(backend, DOCTOR_COUNT);
+        if (workloadLog != null) {
+            addRecordedDoctors(backend, workloadLog.doctors);
+        } else {
+            addDoctors(backend, DOCTOR_COUNT, seed == null ? new Random() : new Random(seed));
+        }
+        if (workloadRecorder != null) {
+            Set<String> rosterSpecialties = new LinkedHashSet<>(Arrays.asList(specialties));
+            if (workloadLog != null) {
+                for (Doctor doctor : workloadLog.doctors) {
+                    rosterSpecialties.add(doctor.specialty);
+                }
+            }
+            recordRoster(backend, rosterSpecialties, workloadRecorder);
+        }
 //         backend.addDoctor(1, "Dr. Smith", "general", "08:00:00", "16:00:00");
 //         backend.addDoctor(2, "Dr. Johnson", "general", "10:00:00", "14:00:00");
 //         backend.addDoctor(3, "Dr. Williams", "cardiology", "08:00:00", "16:00:00");
 //         backend.addDoctor(4, "Dr. Walker", "orthopedics", "08:00:00", "16:00:00");
 
-        if (GENERATOR_THREADS == 0 && SCHEDULERS_PER_SPECIALTY == 0) {
+        if (workloadLog == null && GENERATOR_THREADS == 0 && SCHEDULERS_PER_SPECIALTY == 0) {
             System.exit(0);
         }
-        List<Thread> schedulerThreads = new ArrayList<>();
-
-        for (int i = 0; i < GENERATOR_THREADS; i++) {
-            Thread generatorThread = new AppointmentGeneratorThread(backend);
-            generatorThread.setDaemon(true);
-            generatorThread.start();
+        SchedulingSettings settings = new SchedulingSettings(specialties);
+        settings.setPlannerHorizonDays(PLANNER_HORIZON_DAYS);
+        settings.setPriorityOneReserve(PRIORITY_ONE_RESERVE);
+        AppointmentIngestion ingestion = new AppointmentIngestion(backend, INGESTION_WRITERS, INGESTION_CAPACITY, INGESTION_MAX_IN_FLIGHT);
+        ClinicControl clinicControl = new ClinicControl(backend, ingestion, settings, anomalyCount, successCount);
+        clinicControl.setWorkloadRecorder(workloadRecorder);
+        clinicControl.setSeed(seed);
+        ReplayStats replayStats = null;
+        if (workloadLog != null) {
+            replayStats = new ReplayStats(workloadLog);
+            clinicControl.setScheduleListener(replayStats);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(clinicControl, new ObjectName("cassdemo:type=Clinic"));
+        } catch (JMException e) {
+            logger.error("Could not register clinic MBean: {}", e.getMessage());
         }
 
+        clinicControl.setGeneratorThreads(GENERATOR_THREADS);
         for (String specialty : specialties) {
-            for (int i = 0; i < SCHEDULERS_PER_SPECIALTY; i++) {
-                Thread schedulerThread = new AppointmentSchedulerThread(backend, specialty, anomalyCount, successCount);
-                schedulerThreads.add(schedulerThread);
-                schedulerThread.start();
+            clinicControl.setSchedulerThreads(specialty, SCHEDULERS_PER_SPECIALTY);
+        }
+        if (workloadLog != null) {
+            Set<String> recordedSpecialties = new LinkedHashSet<>();
+            for (WorkloadLog.Arrival arrival : workloadLog.arrivals) {
+                recordedSpecialties.add(arrival.appointment.specialty);
+            }
+            recordedSpecialties.removeAll(Arrays.asList(specialties));
+            for (String specialty : recordedSpecialties) {
+                clinicControl.addSpecialty(specialty, SCHEDULERS_PER_SPECIALTY);
             }
         }
 
+        WorkloadRecorder recorder = workloadRecorder;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            for (Thread schedulerThread : schedulerThreads) {
-                ((AppointmentSchedulerThread) schedulerThread).stopScheduling();
-            }
             try {
-                for (Thread schedulerThread : schedulerThreads) {
-                    schedulerThread.join();
+                clinicControl.shutdown();
+                ingestion.shutdown();
+                if (recorder != null) {
+                    recorder.close();
                 }
-            } catch (InterruptedException e) {
+            } catch (InterruptedException | IOException e) {
                 e.printStackTrace();
             }
+            recordingControl.stop();
         }));
 
+        if (workloadLog != null) {
+            new WorkloadReplayer(workloadLog, ingestion, replaySpeed, replayStats, anomalyCount, Paths.get(replayFile + "." + System.currentTimeMillis() + ".report")).start();
+        }
+
         try {
             while (true) {
                 readCount.set(0);
@@ -114,6 +220,7 @@ public class Main {
                 logger.warn("Writes/second: " + writeCount.get() / 2.0);
                 logger.warn("Total anomaly count: " + anomalyCount.get());
                 logger.warn("Total scheduled appointments: " + successCount.get());
+                logger.warn("Rejected/failed new appointments: " + ingestion.getRejected() + "/" + ingestion.getFailed());
                 logger.warn("-----");
             }
         } catch (InterruptedException e) {
@@ -121,8 +228,7 @@ public class Main {
         }
     }
 
-    private static void addDoctors(ClinicBackend scheduler, int doctorCount) {
-        Random random = new Random();
+    private static void addDoctors(ClinicBackend scheduler, int doctorCount, Random random) {
         String[] doctorNames = {
                 "Müller", "Schmidt", "Schneider", "Fischer", "Weber",
                 "Meyer", "Wagner", "Becker", "Hoffmann", "Schulz",
@@ -152,4 +258,27 @@ public class Main {
         }
     }
 
-}
\ No newline at end of file
+    /** Adds the roster of a workload log under the recorded IDs. */
+    private static void addRecordedDoctors(ClinicBackend scheduler, List<Doctor> doctors) {
+        for (Doctor doctor : doctors) {
+            try {
+                scheduler.addDoctor(doctor.doctorId, doctor.name, doctor.specialty, Time.valueOf(doctor.startHours).toString(), Time.valueOf(doctor.endHours).toString());
+            } catch (BackendException e) {
+                logger.error("Error adding doctor " + doctor.name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Records the doctors the schedulers will actually use, read back from the backend,
+     * so that a capture also covers doctors this run did not add itself.
+     */
+    private static void recordRoster(ClinicBackend scheduler, Set<String> specialties, WorkloadRecorder recorder) {
+        for (String specialty : specialties) {
+            for (Doctor doctor : scheduler.getDoctorsBySpecialty(specialty)) {
+                recorder.recordDoctor(doctor);
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package cassdemo.admin;
+
+import cassdemo.backend.AppointmentIngestion;
+import cassdemo.backend.BackendException;
+import cassdemo.backend.ClinicBackend;
+import cassdemo.scheduling.AppointmentGeneratorThread;
+import cassdemo.scheduling.AppointmentSchedulerThread;
+import cassdemo.entities.Doctor;
+import cassdemo.replay.WorkloadRecorder;
+import cassdemo.scheduling.HorizonPlanner;
+import cassdemo.scheduling.ScheduleListener;
+import cassdemo.scheduling.SchedulingSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cassdemo.util.Util.generateUUID;
+
+/**
+ * Owns the generator and scheduler threads and lets them be resized, retuned and
+ * extended with new specialties or doctors while the cluster keeps running. Registered
+ * over JMX as {@code cassdemo:type=Clinic}.
+ */
+public class ClinicControl implements ClinicControlMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClinicControl.class);
+
+    private final ClinicBackend backend;
+    private final AppointmentIngestion ingestion;
+    private final SchedulingSettings settings;
+    private final AtomicInteger anomalyCount;
+    private final AtomicInteger successCount;
+    private final List<AppointmentGeneratorThread> generatorThreads = new ArrayList<>();
+    private final Map<String, List<AppointmentSchedulerThread>> schedulerThreads = new LinkedHashMap<>();
+    private final Map<String, HorizonPlanner> planners = new HashMap<>();
+    private final List<AppointmentSchedulerThread> stoppedSchedulerThreads = new ArrayList<>();
+    private ScheduleListener scheduleListener;
+    private WorkloadRecorder workloadRecorder;
+    private Long seed;
+    private int generatorsCreated;
+
+    public ClinicControl(ClinicBackend backend, AppointmentIngestion ingestion, SchedulingSettings settings, AtomicInteger anomalyCount, AtomicInteger successCount) {
+        this.backend = backend;
+        this.ingestion = ingestion;
+        this.settings = settings;
+        this.anomalyCount = anomalyCount;
+        this.successCount = successCount;
+        for (String specialty : settings.getSpecialties()) {
+            schedulerThreads.put(specialty, new ArrayList<>());
+            planners.put(specialty, new HorizonPlanner(backend, settings, specialty));
+        }
+    }
+
+    @Override
+    public synchronized int getGeneratorThreads() {
+        return generatorThreads.size();
+    }
+
+    @Override
+    public synchronized void setGeneratorThreads(int count) {
+        requireNonNegative(count);
+        while (generatorThreads.size() < count) {
+            Random seededRandom = seed == null ? null : new Random(seed + generatorsCreated++);
+            AppointmentGeneratorThread generatorThread = new AppointmentGeneratorThread(ingestion, settings, seededRandom, workloadRecorder);
+            generatorThread.setDaemon(true);
+            generatorThread.start();
+            generatorThreads.add(generatorThread);
+        }
+        while (generatorThreads.size() > count) {
+            generatorThreads.remove(generatorThreads.size() - 1).stopGenerating();
+        }
+        logger.warn("Generator threads: {}", count);
+    }
+
+    @Override
+    public synchronized int getSchedulerThreads(String specialty) {
+        List<AppointmentSchedulerThread> threads = schedulersOf(specialty);
+        threads.removeIf(schedulerThread -> !schedulerThread.isAlive());
+        return threads.size();
+    }
+
+    @Override
+    public synchronized void setSchedulerThreads(String specialty, int count) {
+        requireNonNegative(count);
+        List<AppointmentSchedulerThread> threads = schedulersOf(specialty);
+        threads.removeIf(schedulerThread -> !schedulerThread.isAlive());
+        while (threads.size() < count) {
+            AppointmentSchedulerThread schedulerThread = new AppointmentSchedulerThread(backend, settings, planners.get(specialty), specialty, anomalyCount, successCount, scheduleListener);
+            schedulerThread.start();
+            threads.add(schedulerThread);
+        }
+        while (threads.size() > count) {
+            AppointmentSchedulerThread schedulerThread = threads.remove(threads.size() - 1);
+            schedulerThread.stopScheduling();
+            stoppedSchedulerThreads.add(schedulerThread);
+        }
+        stoppedSchedulerThreads.removeIf(schedulerThread -> !schedulerThread.isAlive());
+        logger.warn("Scheduler threads for {}: {}", specialty, count);
+    }
+
+    @Override
+    public long getArrivalDelayMillis() {
+        return settings.getArrivalDelayMillis();
+    }
+
+    @Override
+    public void setArrivalDelayMillis(long millis) {
+        requireNonNegative(millis);
+        settings.setArrivalDelayMillis(millis);
+    }
+
+    @Override
+    public long getVerifyDelayMillis() {
+        return settings.getVerifyDelayMillis();
+    }
+
+    @Override
+    public void setVerifyDelayMillis(long millis) {
+        requireNonNegative(millis);
+        settings.setVerifyDelayMillis(millis);
+    }
+
+    @Override
+    public boolean isEvictionEnabled() {
+        return settings.isEvictionEnabled();
+    }
+
+    @Override
+    public void setEvictionEnabled(boolean enabled) {
+        settings.setEvictionEnabled(enabled);
+    }
+
+    @Override
+    public int getIngestionBacklog() {
+        return ingestion.getOutstanding();
+    }
+
+    @Override
+    public int getIngestionRejected() {
+        return ingestion.getRejected();
+    }
+
+    @Override
+    public int getIngestionFailed() {
+        return ingestion.getFailed();
+    }
+
+    @Override
+    public boolean isPlannerEnabled() {
+        return settings.isPlannerEnabled();
+    }
+
+    @Override
+    public void setPlannerEnabled(boolean enabled) {
+        settings.setPlannerEnabled(enabled);
+    }
+
+    @Override
+    public int getPlannerHorizonDays() {
+        return settings.getPlannerHorizonDays();
+    }
+
+    @Override
+    public void setPlannerHorizonDays(int days) {
+        if (days < 1) {
+            throw new IllegalArgumentException("Horizon must be at least one day: " + days);
+        }
+        settings.setPlannerHorizonDays(days);
+    }
+
+    @Override
+    public double getPriorityOneReserve() {
+        return settings.getPriorityOneReserve();
+    }
+
+    @Override
+    public void setPriorityOneReserve(double reserve) {
+        if (reserve < 0 || reserve > 1) {
+            throw new IllegalArgumentException("Reserve must be between 0 and 1: " + reserve);
+        }
+        settings.setPriorityOneReserve(reserve);
+    }
+
+    @Override
+    public String[] getSpecialties() {
+        return settings.getSpecialties().toArray(new String[0]);
+    }
+
+    /**
+     * Starts schedulers for a new specialty. Generators only produce appointments for it
+     * once it has a doctor, either already in the backend or added with {@link #addDoctor}.
+     */
+    @Override
+    public synchronized void addSpecialty(String specialty, int schedulerThreads) {
+        requireNonNegative(schedulerThreads);
+        if (this.schedulerThreads.containsKey(specialty)) {
+            throw new IllegalArgumentException("Specialty " + specialty + " already exists");
+        }
+        this.schedulerThreads.put(specialty, new ArrayList<>());
+        planners.put(specialty, new HorizonPlanner(backend, settings, specialty));
+        setSchedulerThreads(specialty, schedulerThreads);
+        if (!backend.getDoctorsBySpecialty(specialty).isEmpty()) {
+            settings.getSpecialties().add(specialty);
+        }
+    }
+
+    @Override
+    public int addDoctor(String name, String specialty, String startHours, String endHours) {
+        synchronized (this) {
+            schedulersOf(specialty);
+        }
+        Time.valueOf(startHours);
+        Time.valueOf(endHours);
+        // Random like the scheduler IDs, so instances sharing the cluster do not hand out
+        // the same ID and merge two calendars.
+        int doctorId = generateUUID();
+        try {
+            backend.addDoctor(doctorId, name, specialty, startHours, endHours);
+        } catch (BackendException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        logger.warn("Added doctor {}: {}, Specialty: {}, Working Hours: {} - {}", doctorId, name, specialty, startHours, endHours);
+        synchronized (this) {
+            if (!settings.getSpecialties().contains(specialty)) {
+                settings.getSpecialties().add(specialty);
+                logger.warn("Specialty {} now accepts appointments", specialty);
+            }
+            if (workloadRecorder != null) {
+                workloadRecorder.recordDoctor(new Doctor(doctorId, name, specialty, Time.valueOf(startHours).toLocalTime(), Time.valueOf(endHours).toLocalTime()));
+            }
+        }
+        return doctorId;
+    }
+
+    /** Notifies the listener of every booking made by schedulers started from now on. */
+    public synchronized void setScheduleListener(ScheduleListener scheduleListener) {
+        this.scheduleListener = scheduleListener;
+    }
+
+    /**
+     * Captures doctors added through {@link #addDoctor}, and the appointments of generators
+     * started from now on, to the given workload log.
+     */
+    public synchronized void setWorkloadRecorder(WorkloadRecorder workloadRecorder) {
+        this.workloadRecorder = workloadRecorder;
+    }
+
+    /**
+     * Seeds generators started from now on, the n-th one with {@code seed + n}, so that
+     * each of them produces a reproducible stream.
+     */
+    public synchronized void setSeed(Long seed) {
+        this.seed = seed;
+        this.generatorsCreated = 0;
+    }
+
+    /**
+     * Stops every thread and waits for the schedulers to release the appointment they
+     * are working on.
+     */
+    public void shutdown() throws InterruptedException {
+        List<AppointmentSchedulerThread> toJoin = new ArrayList<>();
+        synchronized (this) {
+            for (AppointmentGeneratorThread generatorThread : generatorThreads) {
+                generatorThread.stopGenerating();
+            }
+            for (List<AppointmentSchedulerThread> threads : schedulerThreads.values()) {
+                for (AppointmentSchedulerThread schedulerThread : threads) {
+                    schedulerThread.stopScheduling();
+                    toJoin.add(schedulerThread);
+                }
+            }
+            toJoin.addAll(stoppedSchedulerThreads);
+        }
+        for (AppointmentSchedulerThread schedulerThread : toJoin) {
+            schedulerThread.join();
+        }
+    }
+
+    private List<AppointmentSchedulerThread> schedulersOf(String specialty) {
+        List<AppointmentSchedulerThread> threads = schedulerThreads.get(specialty);
+        if (threads == null) {
+            throw new IllegalArgumentException("Unknown specialty " + specialty);
+        }
+        return threads;
+    }
+
+    private static void requireNonNegative(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative: " + value);
+        }
+    }
+}
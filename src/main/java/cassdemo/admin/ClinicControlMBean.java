@@ -0,0 +1,47 @@
+package cassdemo.admin;
+
+public interface ClinicControlMBean {
+    int getGeneratorThreads();
+
+    void setGeneratorThreads(int count);
+
+    int getSchedulerThreads(String specialty);
+
+    void setSchedulerThreads(String specialty, int count);
+
+    long getArrivalDelayMillis();
+
+    void setArrivalDelayMillis(long millis);
+
+    long getVerifyDelayMillis();
+
+    void setVerifyDelayMillis(long millis);
+
+    boolean isEvictionEnabled();
+
+    void setEvictionEnabled(boolean enabled);
+
+    int getIngestionBacklog();
+
+    int getIngestionRejected();
+
+    int getIngestionFailed();
+
+    boolean isPlannerEnabled();
+
+    void setPlannerEnabled(boolean enabled);
+
+    int getPlannerHorizonDays();
+
+    void setPlannerHorizonDays(int days);
+
+    double getPriorityOneReserve();
+
+    void setPriorityOneReserve(double reserve);
+
+    String[] getSpecialties();
+
+    void addSpecialty(String specialty, int schedulerThreads);
+
+    int addDoctor(String name, String specialty, String startHours, String endHours);
+}
@@ -0,0 +1,214 @@
+package cassdemo.backend;
+
+import cassdemo.entities.Appointment;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.ResultSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-behind buffer in front of the Appointments table. Producers hand appointments to
+ * {@link #submit} and get a future back straight away; a few writer threads drain the
+ * queue, group the rows by specialty (the partition key) and write each group as one
+ * unlogged batch.
+ * <p>
+ * The number of batches in flight is capped, so when the cluster slows down the writers
+ * wait, the queue fills up and {@link #submit} starts failing fast instead of blocking.
+ * Failed batches are retried with a growing delay; the inserts are idempotent and carry
+ * the appointment's own write timestamp, so a row may be written more than once but is
+ * never lost before its future fails, nor resurrected after it has been scheduled.
+ */
+public class AppointmentIngestion {
+
+    private static final Logger logger = LoggerFactory.getLogger(AppointmentIngestion.class);
+
+    private static final int BATCH_SIZE = 50;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ClinicBackend clinicBackend;
+    private final int capacity;
+    private final Queue<PendingAppointment> queue = new ConcurrentLinkedQueue<>();
+    /** Appointments submitted but not yet written or failed, including those in flight. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Semaphore inFlightBatches;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ingestion-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<Writer> writers = new ArrayList<>();
+    private volatile boolean interrupted = false;
+
+    public AppointmentIngestion(ClinicBackend clinicBackend, int writerThreads, int capacity, int maxInFlightBatches) {
+        this.clinicBackend = clinicBackend;
+        this.capacity = capacity;
+        this.inFlightBatches = new Semaphore(maxInFlightBatches);
+        for (int i = 0; i < writerThreads; i++) {
+            Writer writer = new Writer();
+            writer.setName("ingestion-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            writers.add(writer);
+        }
+    }
+
+    /**
+     * Queues an appointment for writing. Never blocks; when the buffer is full the
+     * returned future is already failed with a {@link BackendException}. Rejected and
+     * failed appointments are counted rather than logged one by one, see
+     * {@link #getRejected} and {@link #getFailed}.
+     */
+    public CompletableFuture<Void> submit(Appointment appointment) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (interrupted) {
+            future.completeExceptionally(new BackendException("Ingestion is shut down"));
+            return future;
+        }
+        if (outstanding.incrementAndGet() > capacity) {
+            outstanding.decrementAndGet();
+            rejected.incrementAndGet();
+            future.completeExceptionally(new BackendException("Ingestion queue full"));
+            return future;
+        }
+        queue.offer(new PendingAppointment(appointment, future));
+        return future;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /** Appointments turned away because the buffer was full. */
+    public int getRejected() {
+        return rejected.get();
+    }
+
+    /** Appointments given up on after {@link #MAX_ATTEMPTS} failed writes. */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Stops accepting appointments and waits until everything already queued has been
+     * written or has failed.
+     */
+    public void shutdown() throws InterruptedException {
+        interrupted = true;
+        for (Writer writer : writers) {
+            writer.join();
+        }
+        retryScheduler.shutdown();
+    }
+
+    private void write(String specialty, List<PendingAppointment> batch) throws InterruptedException {
+        List<Appointment> appointments = new ArrayList<>(batch.size());
+        for (PendingAppointment pending : batch) {
+            appointments.add(pending.appointment);
+        }
+        inFlightBatches.acquire();
+        ResultSetFuture future;
+        try {
+            future = clinicBackend.addAppointmentsAsync(specialty, appointments);
+        } catch (RuntimeException e) {
+            inFlightBatches.release();
+            logger.warn("Writing batch of {} appointments for {} failed: {}", batch.size(), specialty, e.getMessage());
+            for (PendingAppointment pending : batch) {
+                retry(pending, e);
+            }
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                inFlightBatches.release();
+                for (PendingAppointment pending : batch) {
+                    outstanding.decrementAndGet();
+                    pending.future.complete(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                inFlightBatches.release();
+                logger.warn("Writing batch of {} appointments for {} failed: {}", batch.size(), specialty, t.getMessage());
+                for (PendingAppointment pending : batch) {
+                    retry(pending, t);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void retry(PendingAppointment pending, Throwable cause) {
+        pending.attempts++;
+        if (pending.attempts >= MAX_ATTEMPTS) {
+            outstanding.decrementAndGet();
+            failed.incrementAndGet();
+            pending.future.completeExceptionally(new BackendException("Could not add appointment after " + pending.attempts + " attempts. " + cause.getMessage(), cause instanceof Exception ? (Exception) cause : null));
+            return;
+        }
+        retryScheduler.schedule(() -> queue.offer(pending), RETRY_DELAY_MILLIS * pending.attempts, TimeUnit.MILLISECONDS);
+    }
+
+    private static class PendingAppointment {
+        final Appointment appointment;
+        final CompletableFuture<Void> future;
+        int attempts;
+
+        PendingAppointment(Appointment appointment, CompletableFuture<Void> future) {
+            this.appointment = appointment;
+            this.future = future;
+        }
+    }
+
+    private class Writer extends Thread {
+        @Override
+        public void run() {
+            long idleParkNanos = MIN_IDLE_PARK_NANOS;
+            try {
+                while (!interrupted || outstanding.get() > 0) {
+                    Map<String, List<PendingAppointment>> bySpecialty = new HashMap<>();
+                    PendingAppointment pending;
+                    int drained = 0;
+                    while (drained < BATCH_SIZE && (pending = queue.poll()) != null) {
+                        bySpecialty.computeIfAbsent(pending.appointment.specialty, k -> new ArrayList<>()).add(pending);
+                        drained++;
+                    }
+                    if (drained == 0) {
+                        // Back off while the queue stays empty instead of spinning.
+                        LockSupport.parkNanos(idleParkNanos);
+                        idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    idleParkNanos = MIN_IDLE_PARK_NANOS;
+                    for (Map.Entry<String, List<PendingAppointment>> group : bySpecialty.entrySet()) {
+                        write(group.getKey(), group.getValue());
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.error("Interruption error when writing appointments: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package cassdemo.backend;
 
+import cassdemo.diagnostics.BackendStatementEvent;
 import cassdemo.entities.Appointment;
 import cassdemo.entities.AppointmentOwnership;
 import cassdemo.entities.Doctor;
 import cassdemo.entities.DoctorAppointment;
 import com.datastax.driver.core.*;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,6 +19,7 @@ import java.time.LocalTime;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClinicBackend {
@@ -23,6 +28,7 @@ public class ClinicBackend {
 
     private static PreparedStatement INSERT_APPOINTMENT;
     private static PreparedStatement INSERT_DOCTOR_APPOINTMENT;
+    private static PreparedStatement INSERT_DOCTOR_APPOINTMENT_IF_FREE;
     private static PreparedStatement UPDATE_DOCTOR_APPOINTMENT;
     private static PreparedStatement SELECT_DOCTOR_APPOINTMENTS;
     private static PreparedStatement SELECT_PENDING_APPOINTMENTS;
@@ -55,10 +61,12 @@ public class ClinicBackend {
 
     private void prepareStatements() throws BackendException {
         try {
-            INSERT_APPOINTMENT = session.prepare("INSERT INTO Appointments (specialty, priority, appointment_id, patient_first_name, patient_last_name, timestamp) " + "VALUES (?, ?, ?, ?, ?, ?);");
+            INSERT_APPOINTMENT = session.prepare("INSERT INTO Appointments (specialty, priority, appointment_id, patient_first_name, patient_last_name, timestamp) " + "VALUES (?, ?, ?, ?, ?, ?) USING TIMESTAMP ?;");
 
             INSERT_DOCTOR_APPOINTMENT = session.prepare("INSERT INTO DoctorAppointments (doctor_id, appointment_date, time_slot, appointment_id, priority, patient_first_name, patient_last_name) " + "VALUES (?, ?, ?, ?, ?, ?, ?);");
 
+            INSERT_DOCTOR_APPOINTMENT_IF_FREE = session.prepare("INSERT INTO DoctorAppointments (doctor_id, appointment_date, time_slot, appointment_id, priority, patient_first_name, patient_last_name) " + "VALUES (?, ?, ?, ?, ?, ?, ?) IF NOT EXISTS;");
+
             SELECT_PENDING_APPOINTMENTS = session.prepare("SELECT * FROM Appointments WHERE specialty = ? ORDER BY priority DESC, timestamp ASC LIMIT 50;");
 
             SELECT_DOCTOR_BY_SPECIALTY = session.prepare("SELECT doctor_id, name, start_hours, end_hours FROM Doctors WHERE specialty = ?;");
@@ -91,8 +99,8 @@ public class ClinicBackend {
         bs.bind(doctorId, name, specialty, startHours, endHours);
 
         try {
-            session.execute(bs);
-            logger.info("Doctor added: " + name + " (" + specialty + ")");
+            execute("INSERT_DOCTOR", bs, 0, doctorId, 0);
+            logger.info("Doctor added: {} ({})", name, specialty);
             writeCount.getAndIncrement();
         } catch (Exception e) {
             throw new BackendException("Could not add doctor. " + e.getMessage(), e);
@@ -101,21 +109,63 @@ public class ClinicBackend {
 
     public void addAppointment(String specialty, int priority, int appointmentId, String patientFirstName, String patientLastName, Date timestamp) throws BackendException {
         BoundStatement bs = new BoundStatement(INSERT_APPOINTMENT);
-        bs.bind(specialty, priority, appointmentId, patientFirstName, patientLastName, timestamp);
+        bs.bind(specialty, priority, appointmentId, patientFirstName, patientLastName, timestamp, writeTimestamp(timestamp));
 
         try {
-            session.execute(bs);
-            logger.info("Appointment added for " + patientFirstName + " " + patientLastName);
+            execute("INSERT_APPOINTMENT", bs, appointmentId, 0, priority);
+            logger.info("Appointment added for {} {}", patientFirstName, patientLastName);
             writeCount.getAndIncrement();
         } catch (Exception e) {
             throw new BackendException("Could not add appointment. " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Writes appointments of one specialty, i.e. one partition, as a single unlogged batch.
+     * The batch is idempotent, so it is safe to retry when the future fails: every row is
+     * written with its appointment's timestamp, so a late retry of a row that has already
+     * been scheduled and deleted stays behind the delete instead of bringing it back.
+     */
+    public ResultSetFuture addAppointmentsAsync(String specialty, List<Appointment> appointments) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (Appointment a : appointments) {
+            BoundStatement bs = new BoundStatement(INSERT_APPOINTMENT);
+            bs.bind(specialty, a.priority, a.appointmentId, a.patientFirstName, a.patientLastName, a.timestamp, writeTimestamp(a.timestamp));
+            batch.add(bs);
+        }
+        batch.setIdempotent(true);
+
+        BackendStatementEvent event = new BackendStatementEvent();
+        event.begin();
+        ResultSetFuture future = session.executeAsync(batch);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                writeCount.getAndAdd(appointments.size());
+                logger.info("{} appointments added for {}", appointments.size(), specialty);
+                commit();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                commit();
+            }
+
+            private void commit() {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.statement = "INSERT_APPOINTMENT_BATCH";
+                    event.commit();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
     public List<Appointment> selectPendingAppointments(String specialty) {
         BoundStatement bs = new BoundStatement(SELECT_PENDING_APPOINTMENTS);
         bs.bind(specialty);
-        ResultSet rs = session.execute(bs);
+        ResultSet rs = execute("SELECT_PENDING_APPOINTMENTS", bs, 0, 0, 0);
         readCount.getAndIncrement();
         List<Appointment> appointments = new ArrayList<>();
         for (Row row : rs) {
@@ -133,14 +183,14 @@ public class ClinicBackend {
     public void claimAppointmentOwnership(int appointmentId, int schedulerId) {
         BoundStatement bs = new BoundStatement(UPSERT_OWNERSHIP);
         bs.bind(appointmentId, schedulerId);
-        session.execute(bs);
+        execute("UPSERT_OWNERSHIP", bs, appointmentId, 0, 0);
         writeCount.getAndIncrement();
     }
 
     public AppointmentOwnership selectOwnership(int appointmentId) {
         BoundStatement bs = new BoundStatement(SELECT_OWNERSHIP);
         bs.bind(appointmentId);
-        ResultSet rs = session.execute(bs);
+        ResultSet rs = execute("SELECT_OWNERSHIP", bs, appointmentId, 0, 0);
         readCount.getAndIncrement();
         if (rs.isExhausted()) return null;
         Row row = rs.one();
@@ -151,14 +201,14 @@ public class ClinicBackend {
     public void deleteOwnership(int appointmentId) {
         BoundStatement bs = new BoundStatement(DELETE_OWNERSHIP);
         bs.bind(appointmentId);
-        session.execute(bs);
+        execute("DELETE_OWNERSHIP", bs, appointmentId, 0, 0);
         writeCount.getAndIncrement();
     }
 
     public DoctorAppointment selectLatestDoctorAppointment(int doctorId) {
         BoundStatement selectLatest = new BoundStatement(SELECT_LATEST_DOCTOR_APPOINTMENT);
         selectLatest.bind(doctorId);
-        ResultSet rs = session.execute(selectLatest);
+        ResultSet rs = execute("SELECT_LATEST_DOCTOR_APPOINTMENT", selectLatest, 0, doctorId, 0);
         readCount.getAndIncrement();
         if (rs.isExhausted()) {
             return null;
@@ -180,7 +230,7 @@ public class ClinicBackend {
         BoundStatement selectDoctor = new BoundStatement(SELECT_DOCTOR_BY_SPECIALTY);
         selectDoctor.bind(specialty);
         List<Doctor> doctors = new ArrayList<>();
-        ResultSet rs = session.execute(selectDoctor);
+        ResultSet rs = execute("SELECT_DOCTOR_BY_SPECIALTY", selectDoctor, 0, 0, 0);
         readCount.getAndIncrement();
         for (Row row : rs) {
             int doctorId = row.getInt("doctor_id");
@@ -196,7 +246,7 @@ public class ClinicBackend {
         BoundStatement bs = new BoundStatement(SELECT_DOCTOR_SLOT);
         com.datastax.driver.core.LocalDate cassandraDate = com.datastax.driver.core.LocalDate.fromYearMonthDay(appointmentDate.getYear(), appointmentDate.getMonthValue(), appointmentDate.getDayOfMonth());
         bs.bind(doctorId, cassandraDate, timeSlot.toNanoOfDay());
-        ResultSet rs = session.execute(bs);
+        ResultSet rs = execute("SELECT_DOCTOR_SLOT", bs, 0, doctorId, 0);
         readCount.getAndIncrement();
         if (rs.isExhausted()) return null;
         Row row = rs.one();
@@ -214,19 +264,50 @@ public class ClinicBackend {
         bs.bind(doctorId, cassandraDate, timestamp.toLocalTime().toNanoOfDay(), appointmentId, priority, patientName, patientLastName);
 
         try {
-            session.execute(bs);
+            execute("INSERT_DOCTOR_APPOINTMENT", bs, appointmentId, doctorId, priority);
+            writeCount.getAndIncrement();
+            logger.info("Doctor appointment for doctor {} scheduled on {}", doctorId, timestamp);
+        } catch (Exception e) {
+            throw new BackendException("Could not schedule doctor appointment. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Books the slot only if nobody holds it yet (a lightweight transaction).
+     *
+     * @return null when the slot was booked, otherwise the booking already holding it as
+     * returned by the transaction, which is more current than a plain read
+     */
+    public DoctorAppointment scheduleDoctorAppointmentIfFree(int doctorId, int appointmentId, LocalDateTime timestamp, int priority, String patientName, String patientLastName) throws BackendException {
+        BoundStatement bs = new BoundStatement(INSERT_DOCTOR_APPOINTMENT_IF_FREE);
+        com.datastax.driver.core.LocalDate cassandraDate = com.datastax.driver.core.LocalDate.fromYearMonthDay(timestamp.getYear(), timestamp.getMonthValue(), timestamp.getDayOfMonth());
+        bs.bind(doctorId, cassandraDate, timestamp.toLocalTime().toNanoOfDay(), appointmentId, priority, patientName, patientLastName);
+
+        ResultSet rs;
+        try {
+            rs = execute("INSERT_DOCTOR_APPOINTMENT_IF_FREE", bs, appointmentId, doctorId, priority);
             writeCount.getAndIncrement();
-            logger.info("Doctor appointment for doctor " + doctorId + " scheduled on " + timestamp);
         } catch (Exception e) {
             throw new BackendException("Could not schedule doctor appointment. " + e.getMessage(), e);
         }
+        if (rs.wasApplied()) {
+            logger.info("Doctor appointment for doctor {} scheduled on {}", doctorId, timestamp);
+            return null;
+        }
+        Row row = rs.one();
+        int occupantId = row.getInt("appointment_id");
+        int occupantPriority = row.getInt("priority");
+        String occupantName = row.getString("patient_first_name");
+        String occupantLastName = row.getString("patient_last_name");
+
+        return new DoctorAppointment(doctorId, timestamp.toLocalDate(), timestamp.toLocalTime(), occupantId, occupantPriority, occupantName, occupantLastName);
     }
 
     public List<DoctorAppointment> getDoctorDaySchedule(int doctorId, LocalDate appointmentDate) {
         BoundStatement bs = new BoundStatement(SELECT_DOCTOR_APPOINTMENTS);
         com.datastax.driver.core.LocalDate cassandraDate = com.datastax.driver.core.LocalDate.fromYearMonthDay(appointmentDate.getYear(), appointmentDate.getMonthValue(), appointmentDate.getDayOfMonth());
         bs.bind(doctorId, cassandraDate);
-        ResultSet rs = session.execute(bs);
+        ResultSet rs = execute("SELECT_DOCTOR_APPOINTMENTS", bs, 0, doctorId, 0);
         readCount.getAndIncrement();
         List<DoctorAppointment> appointments = new ArrayList<>();
         for (Row row : rs) {
@@ -245,7 +326,7 @@ public class ClinicBackend {
         BoundStatement bs = new BoundStatement(UPDATE_DOCTOR_APPOINTMENT);
         com.datastax.driver.core.LocalDate cassandraDate = com.datastax.driver.core.LocalDate.fromYearMonthDay(appointmentDate.getYear(), appointmentDate.getMonthValue(), appointmentDate.getDayOfMonth());
         bs.bind(appointmentId, priority, patientName, patientLastName, doctorId, cassandraDate, timeSlot.toNanoOfDay());
-        session.execute(bs);
+        execute("UPDATE_DOCTOR_APPOINTMENT", bs, appointmentId, doctorId, priority);
         writeCount.getAndIncrement();
     }
 
@@ -254,13 +335,35 @@ public class ClinicBackend {
         bs.bind(a.specialty, a.priority, a.timestamp, a.appointmentId);
 
         try {
-            session.execute(bs);
+            execute("DELETE_APPOINTMENT", bs, a.appointmentId, 0, a.priority);
             writeCount.getAndIncrement();
         } catch (Exception e) {
             throw new BackendException("Could not delete appointment. " + e.getMessage(), e);
         }
     }
 
+    /** Write time of an appointment row, in the microseconds Cassandra expects. */
+    private static long writeTimestamp(Date timestamp) {
+        return TimeUnit.MILLISECONDS.toMicros(timestamp.getTime());
+    }
+
+    private ResultSet execute(String statement, BoundStatement bs, int appointmentId, int doctorId, int priority) {
+        BackendStatementEvent event = new BackendStatementEvent();
+        event.begin();
+        try {
+            return session.execute(bs);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.statement = statement;
+                event.appointmentId = appointmentId;
+                event.doctorId = doctorId;
+                event.priority = priority;
+                event.commit();
+            }
+        }
+    }
+
     @Override
     protected void finalize() {
         try {
@@ -0,0 +1,13 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("cassdemo.BackendStatement")
+@Label("Backend Statement")
+@Category({"Clinic", "Backend"})
+public class BackendStatementEvent extends ClinicEvent {
+    @Label("Statement")
+    public String statement;
+}
@@ -0,0 +1,18 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Instant event without a duration; {@link RecordingAnalyzer} only counts it. */
+@Name("cassdemo.BookingVerifyFailure")
+@Label("Booking Verify Failure")
+public class BookingVerifyFailureEvent extends ClinicEvent {
+    @Label("Occupant Appointment ID")
+    public int occupantAppointmentId;
+
+    @Label("Slot")
+    public String slot;
+
+    @Label("Eviction")
+    public boolean eviction;
+}
@@ -0,0 +1,19 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Instant event without a duration; {@link RecordingAnalyzer} only counts it. */
+@Name("cassdemo.ClaimConflict")
+@Label("Claim Conflict")
+public class ClaimConflictEvent extends ClinicEvent {
+    @Label("Scheduler ID")
+    public int schedulerId;
+
+    @Label("Owner Scheduler ID")
+    public int ownerSchedulerId;
+
+    /** True when the conflict was only detected when re-reading our own claim. */
+    @Label("After Claim")
+    public boolean afterClaim;
+}
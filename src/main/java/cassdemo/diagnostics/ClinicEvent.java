@@ -0,0 +1,23 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Common base of all clinic flight recorder events. Fields that do not apply to a given
+ * stage (e.g. the doctor of an ownership claim) are left at 0.
+ */
+@Category("Clinic")
+@StackTrace(false)
+public abstract class ClinicEvent extends Event {
+    @Label("Appointment ID")
+    public int appointmentId;
+
+    @Label("Doctor ID")
+    public int doctorId;
+
+    @Label("Priority")
+    public int priority;
+}
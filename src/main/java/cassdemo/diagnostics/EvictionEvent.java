@@ -0,0 +1,17 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("cassdemo.Eviction")
+@Label("Eviction")
+public class EvictionEvent extends ClinicEvent {
+    @Label("Evicted Appointment ID")
+    public int evictedAppointmentId;
+
+    @Label("Evicted Priority")
+    public int evictedPriority;
+
+    @Label("Successful")
+    public boolean successful;
+}
@@ -0,0 +1,14 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("cassdemo.OwnershipClaim")
+@Label("Ownership Claim")
+public class OwnershipClaimEvent extends ClinicEvent {
+    @Label("Scheduler ID")
+    public int schedulerId;
+
+    @Label("Claimed")
+    public boolean claimed;
+}
@@ -0,0 +1,85 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Summarizes a .jfr file written by {@link RecordingControl} into a per-stage latency
+ * breakdown. Backend statements are broken down further by statement name. Conflicts and
+ * verify failures are instant events without a duration, so they are only counted.
+ */
+public class RecordingAnalyzer {
+
+    private static final String EVENT_PREFIX = "cassdemo.";
+    private static final Set<String> INSTANT_STAGES = new HashSet<>(Arrays.asList("ClaimConflict", "BookingVerifyFailure"));
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: RecordingAnalyzer <recording.jfr>");
+            System.exit(1);
+        }
+
+        Map<String, List<Long>> durationsByStage = new TreeMap<>();
+        Map<String, Integer> countsByInstantStage = new TreeMap<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(Paths.get(args[0]))) {
+            String eventName = event.getEventType().getName();
+            if (!eventName.startsWith(EVENT_PREFIX)) {
+                continue;
+            }
+            String stage = eventName.substring(EVENT_PREFIX.length());
+            if (INSTANT_STAGES.contains(stage)) {
+                countsByInstantStage.merge(stage, 1, Integer::sum);
+                continue;
+            }
+            if (event.hasField("statement")) {
+                stage += " " + event.getString("statement");
+            }
+            durationsByStage.computeIfAbsent(stage, k -> new ArrayList<>()).add(event.getDuration().toNanos());
+        }
+
+        System.out.printf("%-45s %8s %10s %10s %10s %10s%n", "stage", "count", "mean ms", "p50 ms", "p99 ms", "max ms");
+        for (Map.Entry<String, List<Long>> entry : durationsByStage.entrySet()) {
+            List<Long> durations = entry.getValue();
+            Collections.sort(durations);
+            long total = 0;
+            for (long duration : durations) {
+                total += duration;
+            }
+            System.out.printf("%-45s %8d %10.3f %10.3f %10.3f %10.3f%n",
+                    entry.getKey(),
+                    durations.size(),
+                    millis(total / durations.size()),
+                    millis(percentile(durations, 0.50)),
+                    millis(percentile(durations, 0.99)),
+                    millis(durations.get(durations.size() - 1)));
+        }
+
+        if (!countsByInstantStage.isEmpty()) {
+            System.out.println();
+            System.out.printf("%-45s %8s%n", "event", "count");
+            for (Map.Entry<String, Integer> entry : countsByInstantStage.entrySet()) {
+                System.out.printf("%-45s %8d%n", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
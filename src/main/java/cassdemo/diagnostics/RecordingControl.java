@@ -0,0 +1,92 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Recording;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts and stops a flight recording of the clinic events. Exposed over JMX so the
+ * recording can be toggled on a running instance; the events themselves cost next to
+ * nothing while no recording is active. The recording only keeps the most recent window
+ * of events, so it can be left running; {@link #dump} writes that window out.
+ */
+public class RecordingControl implements RecordingControlMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RecordingControl.class);
+
+    private static final List<Class<? extends ClinicEvent>> EVENT_TYPES = Arrays.asList(
+            OwnershipClaimEvent.class, ClaimConflictEvent.class, SlotSearchEvent.class,
+            EvictionEvent.class, BookingVerifyFailureEvent.class, BackendStatementEvent.class
+    );
+    private static final Duration MAX_AGE = Duration.ofMinutes(30);
+    private static final long MAX_SIZE_BYTES = 256L * 1024 * 1024;
+
+    private Recording recording;
+    private Path destination;
+
+    @Override
+    public synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    @Override
+    public synchronized String getDestination() {
+        return destination == null ? null : destination.toString();
+    }
+
+    @Override
+    public synchronized void start(String destination) {
+        if (recording != null) {
+            throw new IllegalStateException("Already recording to " + this.destination);
+        }
+        Recording newRecording = new Recording();
+        newRecording.setName("clinic");
+        newRecording.setToDisk(true);
+        newRecording.setMaxAge(MAX_AGE);
+        newRecording.setMaxSize(MAX_SIZE_BYTES);
+        for (Class<? extends ClinicEvent> eventType : EVENT_TYPES) {
+            newRecording.enable(eventType).withoutStackTrace();
+        }
+        this.destination = Paths.get(destination).toAbsolutePath();
+        newRecording.start();
+        recording = newRecording;
+        logger.warn("Flight recording started, destination {}", this.destination);
+    }
+
+    @Override
+    public synchronized void dump() {
+        if (recording == null) {
+            throw new IllegalStateException("Not recording");
+        }
+        try {
+            recording.dump(destination);
+            logger.warn("Flight recording written to {}", destination);
+        } catch (IOException e) {
+            logger.error("Could not write flight recording to {}: {}", destination, e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (recording == null) {
+            return;
+        }
+        try {
+            recording.stop();
+            recording.dump(destination);
+            logger.warn("Flight recording written to {}", destination);
+        } catch (IOException e) {
+            logger.error("Could not write flight recording to {}: {}", destination, e.getMessage());
+        } finally {
+            recording.close();
+            recording = null;
+        }
+    }
+}
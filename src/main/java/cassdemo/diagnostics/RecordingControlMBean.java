@@ -0,0 +1,14 @@
+package cassdemo.diagnostics;
+
+public interface RecordingControlMBean {
+    boolean isRecording();
+
+    String getDestination();
+
+    void start(String destination);
+
+    /** Writes the events retained so far to the destination, keeping the recording running. */
+    void dump();
+
+    void stop();
+}
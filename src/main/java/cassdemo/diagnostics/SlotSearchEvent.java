@@ -0,0 +1,21 @@
+package cassdemo.diagnostics;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("cassdemo.SlotSearch")
+@Label("Slot Search")
+public class SlotSearchEvent extends ClinicEvent {
+    @Label("Doctors Scanned")
+    public int doctorsScanned;
+
+    @Label("Slot")
+    public String slot;
+
+    @Label("Eviction Possible")
+    public boolean evictionPossible;
+
+    /** True when the slot came from the horizon planner rather than a search. */
+    @Label("Planned")
+    public boolean planned;
+}
@@ -0,0 +1,54 @@
+package cassdemo.replay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Prints two replay reports side by side, e.g. a baseline run and a run of a changed
+ * scheduler or backend against the same workload log.
+ */
+public class ReplayComparison {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ReplayComparison <baseline.report> <candidate.report>");
+            System.exit(1);
+        }
+        Properties baseline = load(args[0]);
+        Properties candidate = load(args[1]);
+
+        TreeSet<String> keys = new TreeSet<>(baseline.stringPropertyNames());
+        keys.addAll(candidate.stringPropertyNames());
+        System.out.printf("%-28s %14s %14s %9s%n", "metric", "baseline", "candidate", "change");
+        for (String key : keys) {
+            String before = baseline.getProperty(key, "-");
+            String after = candidate.getProperty(key, "-");
+            System.out.printf("%-28s %14s %14s %9s%n", key, before, after, change(before, after));
+        }
+    }
+
+    private static String change(String before, String after) {
+        try {
+            double from = Double.parseDouble(before);
+            double to = Double.parseDouble(after);
+            if (from == 0) {
+                return "-";
+            }
+            return String.format("%+.1f%%", 100.0 * (to - from) / from);
+        } catch (NumberFormatException e) {
+            return "-";
+        }
+    }
+
+    private static Properties load(String path) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            properties.load(in);
+        }
+        return properties;
+    }
+}
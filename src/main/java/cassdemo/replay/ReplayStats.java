@@ -0,0 +1,123 @@
+package cassdemo.replay;
+
+import cassdemo.entities.Appointment;
+import cassdemo.scheduling.ScheduleListener;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Collects the outcome of a replay: how fast the replayed appointments got scheduled and
+ * how far into the future they were booked, per priority. Appointments that were not
+ * part of the replay are ignored.
+ */
+public class ReplayStats implements ScheduleListener {
+
+    private final Set<Integer> expected = new HashSet<>();
+    private final int total;
+    private final List<Long> timesToScheduleMillis = new ArrayList<>();
+    private final long[] waitMinutesByPriority = new long[4];
+    private final int[] scheduledByPriority = new int[4];
+    private int failed;
+    private long startMillis;
+    private long lastScheduledMillis;
+
+    public ReplayStats(WorkloadLog log) {
+        for (WorkloadLog.Arrival arrival : log.arrivals) {
+            expected.add(arrival.appointment.appointmentId);
+        }
+        total = expected.size();
+    }
+
+    public synchronized void start() {
+        startMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void scheduled(Appointment appointment, LocalDateTime slot) {
+        if (!expected.remove(appointment.appointmentId)) {
+            return;
+        }
+        lastScheduledMillis = System.currentTimeMillis();
+        timesToScheduleMillis.add(lastScheduledMillis - appointment.timestamp.getTime());
+        LocalDateTime arrival = LocalDateTime.ofInstant(appointment.timestamp.toInstant(), ZoneId.systemDefault());
+        int priority = Math.min(Math.max(appointment.priority, 1), 3);
+        waitMinutesByPriority[priority] += Duration.between(arrival, slot).toMinutes();
+        scheduledByPriority[priority]++;
+        if (expected.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /** Stops waiting for an appointment whose write failed for good. */
+    public synchronized void failed(Appointment appointment) {
+        if (!expected.remove(appointment.appointmentId)) {
+            return;
+        }
+        failed++;
+        if (expected.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every replayed appointment has been scheduled or has failed.
+     *
+     * @return false if the timeout ran out first
+     */
+    public synchronized boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!expected.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized Properties toReport(int anomalies) {
+        Properties report = new Properties();
+        int scheduled = timesToScheduleMillis.size();
+        double seconds = Math.max(lastScheduledMillis - startMillis, 1) / 1000.0;
+        report.setProperty("appointments", String.valueOf(total));
+        report.setProperty("scheduled", String.valueOf(scheduled));
+        report.setProperty("failed", String.valueOf(failed));
+        report.setProperty("unfinished", String.valueOf(expected.size()));
+        report.setProperty("anomalies", String.valueOf(anomalies));
+        report.setProperty("throughput_per_second", String.format(Locale.ROOT, "%.3f", scheduled / seconds));
+
+        List<Long> sorted = new ArrayList<>(timesToScheduleMillis);
+        Collections.sort(sorted);
+        long sum = 0;
+        for (long time : sorted) {
+            sum += time;
+        }
+        report.setProperty("time_to_schedule_mean_ms", String.valueOf(scheduled == 0 ? 0 : sum / scheduled));
+        report.setProperty("time_to_schedule_p50_ms", String.valueOf(percentile(sorted, 0.50)));
+        report.setProperty("time_to_schedule_p99_ms", String.valueOf(percentile(sorted, 0.99)));
+
+        for (int priority = 1; priority <= 3; priority++) {
+            double meanHours = scheduledByPriority[priority] == 0 ? 0 : waitMinutesByPriority[priority] / 60.0 / scheduledByPriority[priority];
+            report.setProperty("wait_hours_priority_" + priority, String.format(Locale.ROOT, "%.2f", meanHours));
+        }
+        return report;
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0));
+    }
+}
@@ -0,0 +1,87 @@
+package cassdemo.replay;
+
+import cassdemo.entities.Appointment;
+import cassdemo.entities.Doctor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A captured workload: the doctor roster and the appointment arrivals with their offsets
+ * from the start of the capture.
+ * <p>
+ * On disk the log is a 4 byte magic and a 2 byte version followed by records, each
+ * starting with a type byte and ending with an {@link #END} record. Strings are a 2 byte
+ * length followed by UTF-8 bytes.
+ * <pre>
+ * DOCTOR:  int doctorId, string name, string specialty, int startSecondOfDay, int endSecondOfDay
+ * ARRIVAL: long offsetNanos, string specialty, byte priority, int appointmentId, string firstName, string lastName
+ * </pre>
+ */
+public class WorkloadLog {
+
+    static final int MAGIC = 0x434c4e57;
+    static final short VERSION = 1;
+    static final byte END = 0;
+    static final byte DOCTOR = 1;
+    static final byte ARRIVAL = 2;
+
+    public final List<Doctor> doctors = new ArrayList<>();
+    public final List<Arrival> arrivals = new ArrayList<>();
+
+    public static WorkloadLog read(Path path) throws IOException {
+        WorkloadLog log = new WorkloadLog();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                throw new IOException(path + " is not a workload log");
+            }
+            byte type;
+            while (buffer.hasRemaining() && (type = buffer.get()) != END) {
+                if (type == DOCTOR) {
+                    int doctorId = buffer.getInt();
+                    String name = getString(buffer);
+                    String specialty = getString(buffer);
+                    LocalTime startHours = LocalTime.ofSecondOfDay(buffer.getInt());
+                    LocalTime endHours = LocalTime.ofSecondOfDay(buffer.getInt());
+                    log.doctors.add(new Doctor(doctorId, name, specialty, startHours, endHours));
+                } else if (type == ARRIVAL) {
+                    long offsetNanos = buffer.getLong();
+                    String specialty = getString(buffer);
+                    int priority = buffer.get();
+                    int appointmentId = buffer.getInt();
+                    String firstName = getString(buffer);
+                    String lastName = getString(buffer);
+                    log.arrivals.add(new Arrival(offsetNanos, new Appointment(specialty, priority, null, appointmentId, firstName, lastName)));
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + path);
+                }
+            }
+        }
+        return log;
+    }
+
+    private static String getString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static class Arrival {
+        public final long offsetNanos;
+        /** The recorded appointment; its timestamp is set when it is replayed. */
+        public final Appointment appointment;
+
+        public Arrival(long offsetNanos, Appointment appointment) {
+            this.offsetNanos = offsetNanos;
+            this.appointment = appointment;
+        }
+    }
+}
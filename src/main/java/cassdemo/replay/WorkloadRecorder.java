@@ -0,0 +1,89 @@
+package cassdemo.replay;
+
+import cassdemo.entities.Appointment;
+import cassdemo.entities.Doctor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends the doctor roster and the appointment arrival stream to a memory-mapped
+ * workload log, see {@link WorkloadLog} for the format. Arrivals are stamped with their
+ * offset from the moment the recorder was opened.
+ */
+public class WorkloadRecorder implements Closeable {
+
+    private static final int REGION_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final long startNanos = System.nanoTime();
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    public WorkloadRecorder(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        region.putInt(WorkloadLog.MAGIC);
+        region.putShort(WorkloadLog.VERSION);
+    }
+
+    public synchronized void recordDoctor(Doctor doctor) {
+        byte[] name = doctor.name.getBytes(StandardCharsets.UTF_8);
+        byte[] specialty = doctor.specialty.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(1 + 4 + 2 + name.length + 2 + specialty.length + 4 + 4);
+        region.put(WorkloadLog.DOCTOR);
+        region.putInt(doctor.doctorId);
+        putString(name);
+        putString(specialty);
+        region.putInt(doctor.startHours.toSecondOfDay());
+        region.putInt(doctor.endHours.toSecondOfDay());
+    }
+
+    public synchronized void recordArrival(Appointment appointment) {
+        long offsetNanos = System.nanoTime() - startNanos;
+        byte[] specialty = appointment.specialty.getBytes(StandardCharsets.UTF_8);
+        byte[] firstName = appointment.patientFirstName.getBytes(StandardCharsets.UTF_8);
+        byte[] lastName = appointment.patientLastName.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(1 + 8 + 2 + specialty.length + 1 + 4 + 2 + firstName.length + 2 + lastName.length);
+        region.put(WorkloadLog.ARRIVAL);
+        region.putLong(offsetNanos);
+        putString(specialty);
+        region.put((byte) appointment.priority);
+        region.putInt(appointment.appointmentId);
+        putString(firstName);
+        putString(lastName);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ensureRemaining(1);
+        region.put(WorkloadLog.END);
+        long length = regionStart + region.position();
+        region.force();
+        channel.truncate(length);
+        channel.close();
+    }
+
+    private void putString(byte[] bytes) {
+        region.putShort((short) bytes.length);
+        region.put(bytes);
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (region.remaining() >= bytes) {
+            return;
+        }
+        try {
+            regionStart += region.position();
+            region.force();
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not extend workload log. " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package cassdemo.replay;
+
+import cassdemo.backend.AppointmentIngestion;
+import cassdemo.entities.Appointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds the arrivals of a {@link WorkloadLog} to the ingestion buffer in recorded order,
+ * at the recorded pace divided by {@code speed} (0 replays as fast as possible). When the
+ * buffer is full the replayer waits and resubmits, so a fast replay is slowed down rather
+ * than thinned out; appointments whose write finally fails are reported as failed. Once
+ * every replayed appointment has been scheduled or has failed, it writes the
+ * {@link ReplayStats} report and exits the application, with a non-zero status when the
+ * timeout ran out or the replay was cut short.
+ */
+public class WorkloadReplayer extends Thread {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkloadReplayer.class);
+    private static final long COMPLETION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long RESUBMIT_DELAY_MILLIS = 10;
+
+    private final WorkloadLog log;
+    private final AppointmentIngestion ingestion;
+    private final double speed;
+    private final ReplayStats stats;
+    private final AtomicInteger anomalyCount;
+    private final Path reportPath;
+
+    public WorkloadReplayer(WorkloadLog log, AppointmentIngestion ingestion, double speed, ReplayStats stats, AtomicInteger anomalyCount, Path reportPath) {
+        this.log = log;
+        this.ingestion = ingestion;
+        this.speed = speed;
+        this.stats = stats;
+        this.anomalyCount = anomalyCount;
+        this.reportPath = reportPath;
+    }
+
+    @Override
+    public void run() {
+        try {
+            logger.warn("Replaying {} arrivals at speed {}", log.arrivals.size(), speed);
+            int anomaliesBefore = anomalyCount.get();
+            stats.start();
+            long startNanos = System.nanoTime();
+            for (WorkloadLog.Arrival arrival : log.arrivals) {
+                if (speed > 0) {
+                    long delayNanos = startNanos + (long) (arrival.offsetNanos / speed) - System.nanoTime();
+                    if (delayNanos > 0) {
+                        TimeUnit.NANOSECONDS.sleep(delayNanos);
+                    }
+                }
+                Appointment recorded = arrival.appointment;
+                Appointment appointment = new Appointment(recorded.specialty, recorded.priority, new Date(), recorded.appointmentId, recorded.patientFirstName, recorded.patientLastName);
+                submit(appointment);
+            }
+            logger.warn("All arrivals submitted. Waiting for them to be scheduled...");
+            boolean completed = stats.awaitCompletion(COMPLETION_TIMEOUT_MILLIS);
+            if (!completed) {
+                logger.error("Replay did not finish within {} minutes", TimeUnit.MILLISECONDS.toMinutes(COMPLETION_TIMEOUT_MILLIS));
+            }
+
+            Properties report = stats.toReport(anomalyCount.get() - anomaliesBefore);
+            try (OutputStream out = Files.newOutputStream(reportPath)) {
+                report.store(out, "Replay report");
+            }
+            logger.warn("Replay report written to {}: {}", reportPath, report);
+            System.exit(completed ? 0 : 1);
+        } catch (InterruptedException e) {
+            logger.error("Interruption error when replaying workload: {}", e.getMessage());
+        } catch (IOException e) {
+            logger.error("Could not write replay report to {}: {}", reportPath, e.getMessage());
+        }
+        System.exit(1);
+    }
+
+    /**
+     * Hands the appointment to the ingestion buffer, waiting while the buffer is full. A
+     * write that fails after its retries is counted by {@link ReplayStats#failed}.
+     */
+    private void submit(Appointment appointment) throws InterruptedException {
+        while (true) {
+            CompletableFuture<Void> future = ingestion.submit(appointment);
+            if (!future.isCompletedExceptionally()) {
+                future.whenComplete((ignored, e) -> {
+                    if (e != null) {
+                        stats.failed(appointment);
+                    }
+                });
+                return;
+            }
+            Thread.sleep(RESUBMIT_DELAY_MILLIS);
+        }
+    }
+}
@@ -1,14 +1,17 @@
 package cassdemo.scheduling;
 
-import cassdemo.backend.BackendException;
-import cassdemo.backend.ClinicBackend;
+import cassdemo.backend.AppointmentIngestion;
+import cassdemo.entities.Appointment;
+import cassdemo.replay.WorkloadRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
 
-import static cassdemo.Main.specialties;
 import static cassdemo.util.Util.generateUUID;
 
 public class AppointmentGeneratorThread extends Thread {
@@ -27,18 +30,32 @@ public class AppointmentGeneratorThread extends Thread {
             "Adams", "Nelson", "Hill", "Carter", "Mitchell", "Perez", "Robinson", "Gonzalez", "Lopez", "Hernandez",
             "Hill", "Ward", "Flores", "Rivera", "Wood", "Cooper", "Morris", "Murphy", "Bailey", "Bell"
     };
-    private final ClinicBackend clinicBackend;
+    private final AppointmentIngestion ingestion;
+    private final SchedulingSettings settings;
+    private final Random seededRandom;
+    private final WorkloadRecorder workloadRecorder;
+    private volatile boolean interrupted = false;
 
-    public AppointmentGeneratorThread(ClinicBackend clinicBackend) {
-        this.clinicBackend = clinicBackend;
+    /**
+     * @param seededRandom source of all generated values including appointment IDs, so the
+     *                     stream can be reproduced; null to use {@link ThreadLocalRandom}
+     * @param workloadRecorder captures every appointment the ingestion buffer accepts; may be null
+     */
+    public AppointmentGeneratorThread(AppointmentIngestion ingestion, SchedulingSettings settings, Random seededRandom, WorkloadRecorder workloadRecorder) {
+        this.ingestion = ingestion;
+        this.settings = settings;
+        this.seededRandom = seededRandom;
+        this.workloadRecorder = workloadRecorder;
     }
 
     @Override
     public void run() {
-        while (true) {
-            int specialtyIndex = ThreadLocalRandom.current().nextInt(specialties.length);
-            String specialty = specialties[specialtyIndex];
-            int prioritySeed = ThreadLocalRandom.current().nextInt(10);
+        Random random = seededRandom != null ? seededRandom : ThreadLocalRandom.current();
+        while (!interrupted) {
+            List<String> specialties = settings.getSpecialties();
+            int specialtyIndex = random.nextInt(specialties.size());
+            String specialty = specialties.get(specialtyIndex);
+            int prioritySeed = random.nextInt(10);
             int priority = 2;
             if (prioritySeed == 9) {
                 priority = 1;
@@ -46,19 +63,26 @@ public class AppointmentGeneratorThread extends Thread {
                 priority = 3;
             }
 
-            int firstNameIndex = ThreadLocalRandom.current().nextInt(firstNames.length);
-            int lastNameIndex = ThreadLocalRandom.current().nextInt(lastNames.length);
+            int firstNameIndex = random.nextInt(firstNames.length);
+            int lastNameIndex = random.nextInt(lastNames.length);
             String patientFirstName = firstNames[firstNameIndex];
             String patientLastName = lastNames[lastNameIndex];
 
+            int appointmentId = seededRandom != null ? random.nextInt(Integer.MAX_VALUE) : generateUUID();
+            Appointment appointment = new Appointment(specialty, priority, new Date(), appointmentId, patientFirstName, patientLastName);
+            CompletableFuture<Void> accepted = ingestion.submit(appointment);
+            if (workloadRecorder != null && !accepted.isCompletedExceptionally()) {
+                workloadRecorder.recordArrival(appointment);
+            }
             try {
-                clinicBackend.addAppointment(specialty, priority, generateUUID(), patientFirstName, patientLastName, new Date());
-                Thread.sleep(200);
+                Thread.sleep(settings.getArrivalDelayMillis());
             } catch (InterruptedException e) {
-                logger.error("Interruption error when generating appointments: " + e.getMessage());
-            } catch (BackendException e) {
-                logger.error("Backend exception when generating appointments: " + e.getMessage());
+                logger.error("Interruption error when generating appointments: {}", e.getMessage());
             }
         }
     }
+
+    public void stopGenerating() {
+        this.interrupted = true;
+    }
 }
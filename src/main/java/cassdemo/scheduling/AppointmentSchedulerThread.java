@@ -2,6 +2,11 @@ package cassdemo.scheduling;
 
 import cassdemo.backend.BackendException;
 import cassdemo.backend.ClinicBackend;
+import cassdemo.diagnostics.BookingVerifyFailureEvent;
+import cassdemo.diagnostics.ClaimConflictEvent;
+import cassdemo.diagnostics.EvictionEvent;
+import cassdemo.diagnostics.OwnershipClaimEvent;
+import cassdemo.diagnostics.SlotSearchEvent;
 import cassdemo.entities.Appointment;
 import cassdemo.entities.AppointmentOwnership;
 import cassdemo.entities.Doctor;
@@ -21,33 +26,39 @@ public class AppointmentSchedulerThread extends Thread {
 
     private static final Logger logger = LoggerFactory.getLogger(AppointmentSchedulerThread.class);
     private final ClinicBackend clinicBackend;
+    private final SchedulingSettings settings;
+    private final HorizonPlanner planner;
     private final String specialty;
     private final int id;
     private Appointment processedAppointment;
     private volatile boolean interrupted = false;
     private AtomicInteger anomalyCount;
     private AtomicInteger successCount;
+    private final ScheduleListener scheduleListener;
 
-    public AppointmentSchedulerThread(ClinicBackend clinicBackend, String specialty, AtomicInteger anomalyCount, AtomicInteger successCount) {
+    public AppointmentSchedulerThread(ClinicBackend clinicBackend, SchedulingSettings settings, HorizonPlanner planner, String specialty, AtomicInteger anomalyCount, AtomicInteger successCount, ScheduleListener scheduleListener) {
         this.clinicBackend = clinicBackend;
+        this.settings = settings;
+        this.planner = planner;
         this.specialty = specialty;
         this.id = generateUUID();
         this.anomalyCount = anomalyCount;
         this.successCount = successCount;
+        this.scheduleListener = scheduleListener;
     }
 
     @Override
     public void run() {
         try {
-            logger.info("Starting scheduling for specialty " + specialty + "...");
+            logger.info("Starting scheduling for specialty {}...", specialty);
             while (!interrupted) {
                 scheduleForSpecialty(specialty);
                 Thread.sleep(100);
             }
         } catch (BackendException e) {
-            logger.error("Backend error when scheduling for specialty: " + e.getMessage());
+            logger.error("Backend error when scheduling for specialty: {}", e.getMessage());
         } catch (InterruptedException e) {
-            logger.error("Interruption error when scheduling for specialty: " + e.getMessage());
+            logger.error("Interruption error when scheduling for specialty: {}", e.getMessage());
         } finally {
             logger.info("Performing cleanup...");
             if (processedAppointment != null) {
@@ -63,43 +74,128 @@ public class AppointmentSchedulerThread extends Thread {
         Iterator<Appointment> it = pendingAppointments.iterator();
         while (it.hasNext() && !schedulingWasSuccessful) {
             processedAppointment = it.next();
-            logger.info("Now processing appointment with id " + processedAppointment.appointmentId + ", specialty " + specialty);
-            logger.info("Checking ownership for appointment " + processedAppointment.appointmentId);
+            logger.info("Now processing appointment with id {}, specialty {}", processedAppointment.appointmentId, specialty);
+            logger.info("Checking ownership for appointment {}", processedAppointment.appointmentId);
+            OwnershipClaimEvent claimEvent = new OwnershipClaimEvent();
+            claimEvent.begin();
             AppointmentOwnership appointmentOwnership = clinicBackend.selectOwnership(processedAppointment.appointmentId);
             if (appointmentOwnership != null && appointmentOwnership.schedulerId != this.id) {
-                logger.info("Appointment already owned by scheduler " + appointmentOwnership.schedulerId + ". Backing off...");
+                logger.info("Appointment already owned by scheduler {}. Backing off...", appointmentOwnership.schedulerId);
+                recordClaimConflict(appointmentOwnership.schedulerId, false);
+                commitClaim(claimEvent, false);
                 continue;
             }
             clinicBackend.claimAppointmentOwnership(processedAppointment.appointmentId, this.id);
-            Thread.sleep(100);
+            Thread.sleep(settings.getVerifyDelayMillis());
             appointmentOwnership = clinicBackend.selectOwnership(processedAppointment.appointmentId);
             if (appointmentOwnership != null && appointmentOwnership.schedulerId != this.id) {
-                logger.warn("Appointment already owned by scheduler " + appointmentOwnership.schedulerId + ". Backing off...");
+                logger.warn("Appointment already owned by scheduler {}. Backing off...", appointmentOwnership.schedulerId);
                 anomalyCount.getAndIncrement();
+                recordClaimConflict(appointmentOwnership.schedulerId, true);
+                commitClaim(claimEvent, false);
                 continue;
             }
-            logger.info("Successfully claimed ownership of " + processedAppointment.appointmentId + ". Now trying to schedule");
+            commitClaim(claimEvent, true);
+            logger.info("Successfully claimed ownership of {}. Now trying to schedule", processedAppointment.appointmentId);
 
-            findAvailableDoctor(specialty, processedAppointment.appointmentId, processedAppointment.priority, processedAppointment.patientFirstName, processedAppointment.patientLastName);
-            logger.info("Successfully scheduled appointment " + processedAppointment.appointmentId);
+            LocalDateTime bookedSlot = bookFromPlan(processedAppointment.appointmentId, processedAppointment.priority, processedAppointment.patientFirstName, processedAppointment.patientLastName);
+            if (bookedSlot == null) {
+                bookedSlot = findAvailableDoctor(specialty, processedAppointment.appointmentId, processedAppointment.priority, processedAppointment.patientFirstName, processedAppointment.patientLastName);
+            }
+            if (bookedSlot == null) {
+                logger.warn("No doctors for specialty {}. Leaving appointment {} pending", specialty, processedAppointment.appointmentId);
+                clinicBackend.deleteOwnership(processedAppointment.appointmentId);
+                processedAppointment = null;
+                return;
+            }
+            logger.info("Successfully scheduled appointment {}", processedAppointment.appointmentId);
             clinicBackend.deleteAppointment(processedAppointment);
             clinicBackend.deleteOwnership(processedAppointment.appointmentId);
             schedulingWasSuccessful = true;
             successCount.getAndIncrement();
+            if (scheduleListener != null) {
+                scheduleListener.scheduled(processedAppointment, bookedSlot);
+            }
         }
 
     }
 
-    private void findAvailableDoctor(String specialty, int appointmentId, int priority, String patientName, String patientLastName) throws BackendException, InterruptedException {
+    /**
+     * Books the appointment into a slot handed out by the planner, retrying with another
+     * slot while the slot turns out to be taken. The model may be a few seconds stale, so
+     * the booking is a conditional write that never replaces someone else's appointment.
+     *
+     * @return the booked slot, or null when the planner is off or has no capacity left, so
+     * the caller has to fall back to {@link #findAvailableDoctor}
+     */
+    private LocalDateTime bookFromPlan(int appointmentId, int priority, String patientName, String patientLastName) throws BackendException, InterruptedException {
+        if (!settings.isPlannerEnabled()) {
+            return null;
+        }
+        while (true) {
+            SlotSearchEvent searchEvent = new SlotSearchEvent();
+            searchEvent.begin();
+            HorizonPlanner.PlannedSlot slot = planner.reserve(priority);
+            searchEvent.end();
+            if (searchEvent.shouldCommit()) {
+                searchEvent.appointmentId = appointmentId;
+                searchEvent.doctorId = slot == null ? 0 : slot.doctorId;
+                searchEvent.priority = priority;
+                searchEvent.slot = slot == null ? null : slot.time.toString();
+                searchEvent.planned = true;
+                searchEvent.commit();
+            }
+            if (slot == null) {
+                logger.info("Planner has no capacity left for priority {}. Searching instead", priority);
+                return null;
+            }
+
+            boolean settled = false;
+            try {
+                DoctorAppointment occupant = clinicBackend.scheduleDoctorAppointmentIfFree(slot.doctorId, appointmentId, slot.time, priority, patientName, patientLastName);
+                if (occupant == null) {
+                    planner.booked(slot, priority);
+                    settled = true;
+                    return slot.time;
+                }
+                logger.info("Failed to insert planned doctor appointment for doctor {}. Appointment {} is already there", slot.doctorId, occupant.appointmentId);
+                recordVerifyFailure(slot.doctorId, slot.time, occupant.appointmentId, appointmentId, priority, false);
+                settled = true;
+                planner.conflict(slot, occupant.priority);
+            } finally {
+                if (!settled) {
+                    planner.release(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the slot the appointment was booked into, or null when the specialty has no
+     * doctors yet
+     */
+    private LocalDateTime findAvailableDoctor(String specialty, int appointmentId, int priority, String patientName, String patientLastName) throws BackendException, InterruptedException {
         LocalDateTime bestAvailableSlot = null;
+        LocalDateTime bookedSlot = null;
         int bestDoctorId = -1;
 
         List<Doctor> doctors = clinicBackend.getDoctorsBySpecialty(specialty);
+        if (doctors.isEmpty()) {
+            return null;
+        }
+        // With the planner on, the days of its horizon belong to it, including the slots it
+        // keeps for priority 1, so the search only books after the horizon.
+        LocalDate firstDay = LocalDate.now().plusDays(1);
+        if (settings.isPlannerEnabled()) {
+            firstDay = firstDay.plusDays(settings.getPlannerHorizonDays());
+        }
         boolean appointmentInsertionSuccessfull = false;
         boolean evictionPossible = false;
         while (!appointmentInsertionSuccessfull) {
+            SlotSearchEvent searchEvent = new SlotSearchEvent();
+            searchEvent.begin();
             for (Doctor doc : doctors) {
-                LocalDateTime firstAvailableSlot = LocalDate.now().plusDays(1).atTime(doc.startHours);
+                LocalDateTime firstAvailableSlot = firstDay.atTime(doc.startHours);
 
                 DoctorAppointment latestAppointment = clinicBackend.selectLatestDoctorAppointment(doc.doctorId);
                 boolean localEvictionPossible = false;
@@ -110,6 +206,10 @@ public class AppointmentSchedulerThread extends Thread {
                         firstAvailableSlot = latestAppointment.appointmentDate.atTime(latestAppointment.timeSlot.plusMinutes(30));
                         localEvictionPossible = true;
                     }
+                    if (firstAvailableSlot.toLocalDate().isBefore(firstDay)) {
+                        firstAvailableSlot = firstDay.atTime(doc.startHours);
+                        localEvictionPossible = false;
+                    }
                 }
 
                 if (bestAvailableSlot == null || bestAvailableSlot.isAfter(firstAvailableSlot)) {
@@ -118,55 +218,122 @@ public class AppointmentSchedulerThread extends Thread {
                     evictionPossible = localEvictionPossible;
                 }
             }
+            searchEvent.end();
+            if (searchEvent.shouldCommit()) {
+                searchEvent.appointmentId = appointmentId;
+                searchEvent.doctorId = bestDoctorId;
+                searchEvent.priority = priority;
+                searchEvent.doctorsScanned = doctors.size();
+                searchEvent.slot = String.valueOf(bestAvailableSlot);
+                searchEvent.evictionPossible = evictionPossible;
+                searchEvent.commit();
+            }
             DoctorAppointment evictionCandidate = null;
-            if (evictionPossible && priority < 3) {
+            if (evictionPossible && priority < 3 && settings.isEvictionEnabled()) {
                 logger.info("Eviction possible. Looking for an appointment to evict");
                 List<DoctorAppointment> existingDoctorAppointments = clinicBackend.getDoctorDaySchedule(bestDoctorId, bestAvailableSlot.toLocalDate());
                 for (DoctorAppointment existingDoctorAppointment : existingDoctorAppointments) {
                     if (existingDoctorAppointment.priority > priority) {
                         evictionCandidate = existingDoctorAppointment;
-                        logger.info("Found eviction candidate " + evictionCandidate.appointmentId);
+                        logger.info("Found eviction candidate {}", evictionCandidate.appointmentId);
                         break;
                     }
                 }
                 if (evictionCandidate == null) {
                     evictionPossible = false;
                 } else {
-                    logger.info("Trying to evict appointment " + evictionCandidate.appointmentId + " and replace it by " + appointmentId);
+                    logger.info("Trying to evict appointment {} and replace it by {}", evictionCandidate.appointmentId, appointmentId);
+                    EvictionEvent evictionEvent = new EvictionEvent();
+                    evictionEvent.begin();
                     clinicBackend.claimAppointmentOwnership(processedAppointment.appointmentId, this.id);
-                    Thread.sleep(100);
+                    Thread.sleep(settings.getVerifyDelayMillis());
                     AppointmentOwnership appointmentOwnership = clinicBackend.selectOwnership(processedAppointment.appointmentId);
                     if (appointmentOwnership != null && appointmentOwnership.schedulerId != this.id) {
-                        logger.warn("Appointment already owned by scheduler " + appointmentOwnership.schedulerId + ". Backing off...");
+                        logger.warn("Appointment already owned by scheduler {}. Backing off...", appointmentOwnership.schedulerId);
                         anomalyCount.getAndIncrement();
+                        recordClaimConflict(appointmentOwnership.schedulerId, true);
                     }
                     clinicBackend.scheduleDoctorAppointment(bestDoctorId, evictionCandidate.appointmentId, bestAvailableSlot, evictionCandidate.priority, evictionCandidate.patientName, evictionCandidate.patientLastName);
-                    Thread.sleep(100);
+                    Thread.sleep(settings.getVerifyDelayMillis());
                     DoctorAppointment slotContent = clinicBackend.checkScheduleSlot(bestDoctorId, bestAvailableSlot.toLocalDate(), bestAvailableSlot.toLocalTime());
                     if (slotContent.appointmentId != evictionCandidate.appointmentId) {
-                        logger.error("Failed to evict and insert doctor appointment for doctor " + bestDoctorId + ". Appointment " + slotContent.appointmentId + " is already there");
+                        logger.error("Failed to evict and insert doctor appointment for doctor {}. Appointment {} is already there", bestDoctorId, slotContent.appointmentId);
                         anomalyCount.getAndIncrement();
+                        recordVerifyFailure(bestDoctorId, bestAvailableSlot, slotContent.appointmentId, appointmentId, priority, true);
                     } else {
                         clinicBackend.updateDoctorAppointment(bestDoctorId, evictionCandidate.appointmentDate, evictionCandidate.timeSlot, appointmentId, priority, patientName, patientLastName);
-                        logger.info("DoctorAppointment " + evictionCandidate.appointmentId + " evicted and re-scheduled for " + bestAvailableSlot);
+                        logger.info("DoctorAppointment {} evicted and re-scheduled for {}", evictionCandidate.appointmentId, bestAvailableSlot);
+                        planner.markBooked(bestDoctorId, bestAvailableSlot, evictionCandidate.priority);
+                        bookedSlot = evictionCandidate.appointmentDate.atTime(evictionCandidate.timeSlot);
+                        planner.markBooked(bestDoctorId, bookedSlot, priority);
                         appointmentInsertionSuccessfull = true;
                     }
+                    evictionEvent.end();
+                    if (evictionEvent.shouldCommit()) {
+                        evictionEvent.appointmentId = appointmentId;
+                        evictionEvent.doctorId = bestDoctorId;
+                        evictionEvent.priority = priority;
+                        evictionEvent.evictedAppointmentId = evictionCandidate.appointmentId;
+                        evictionEvent.evictedPriority = evictionCandidate.priority;
+                        evictionEvent.successful = appointmentInsertionSuccessfull;
+                        evictionEvent.commit();
+                    }
                     clinicBackend.deleteOwnership(evictionCandidate.appointmentId);
                 }
             }
-            if (!evictionPossible || priority == 3 || appointmentInsertionSuccessfull) {
+            if (!appointmentInsertionSuccessfull && (!evictionPossible || priority == 3 || !settings.isEvictionEnabled())) {
                 logger.info("Eviction not possible. Using traditional insert...");
                 clinicBackend.scheduleDoctorAppointment(bestDoctorId, appointmentId, bestAvailableSlot, priority, patientName, patientLastName);
-                Thread.sleep(100);
+                Thread.sleep(settings.getVerifyDelayMillis());
                 DoctorAppointment slotContent = clinicBackend.checkScheduleSlot(bestDoctorId, bestAvailableSlot.toLocalDate(), bestAvailableSlot.toLocalTime());
                 if (slotContent.appointmentId != appointmentId) {
-                    logger.info("Failed to insert doctor appointment for doctor " + bestDoctorId + ". Appointment " + slotContent.appointmentId + " is already there");
+                    logger.info("Failed to insert doctor appointment for doctor {}. Appointment {} is already there", bestDoctorId, slotContent.appointmentId);
+                    recordVerifyFailure(bestDoctorId, bestAvailableSlot, slotContent.appointmentId, appointmentId, priority, false);
                 } else {
+                    planner.markBooked(bestDoctorId, bestAvailableSlot, priority);
                     appointmentInsertionSuccessfull = true;
+                    bookedSlot = bestAvailableSlot;
                 }
             }
 
         }
+        return bookedSlot;
+    }
+
+    private void commitClaim(OwnershipClaimEvent event, boolean claimed) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.appointmentId = processedAppointment.appointmentId;
+            event.priority = processedAppointment.priority;
+            event.schedulerId = this.id;
+            event.claimed = claimed;
+            event.commit();
+        }
+    }
+
+    private void recordClaimConflict(int ownerSchedulerId, boolean afterClaim) {
+        ClaimConflictEvent event = new ClaimConflictEvent();
+        if (event.shouldCommit()) {
+            event.appointmentId = processedAppointment.appointmentId;
+            event.priority = processedAppointment.priority;
+            event.schedulerId = this.id;
+            event.ownerSchedulerId = ownerSchedulerId;
+            event.afterClaim = afterClaim;
+            event.commit();
+        }
+    }
+
+    private void recordVerifyFailure(int doctorId, LocalDateTime slot, int occupantAppointmentId, int appointmentId, int priority, boolean eviction) {
+        BookingVerifyFailureEvent event = new BookingVerifyFailureEvent();
+        if (event.shouldCommit()) {
+            event.appointmentId = appointmentId;
+            event.doctorId = doctorId;
+            event.priority = priority;
+            event.occupantAppointmentId = occupantAppointmentId;
+            event.slot = slot.toString();
+            event.eviction = eviction;
+            event.commit();
+        }
     }
 
     public void stopScheduling() {
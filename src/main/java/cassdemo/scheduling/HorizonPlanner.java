@@ -0,0 +1,306 @@
+package cassdemo.scheduling;
+
+import cassdemo.backend.ClinicBackend;
+import cassdemo.entities.Doctor;
+import cassdemo.entities.DoctorAppointment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory capacity model of one specialty over a rolling window of days, starting
+ * tomorrow. Each doctor-day is split into the same 30 minute slots the scheduler books,
+ * from {@link Doctor#startHours} up to {@link Doctor#endHours}.
+ * <p>
+ * Slots are handed out by priority tier. Every doctor-day keeps a share of its slots
+ * free for priority 1, which takes the earliest free slot anywhere in the window. Lower
+ * priorities take the earliest day that still has unreserved capacity and, within it,
+ * the doctor with the least unreserved capacity left, so the others stay open.
+ * <p>
+ * The model is shared by the scheduler threads of one specialty. Bookings made by other
+ * instances are picked up by re-reading a doctor-day once it is older than the refresh
+ * interval, or right away when a slot handed out turns out to be taken. The model can be
+ * that stale, so callers must book its slots with a conditional write. Reads run outside
+ * the lock; a doctor-day is only handed out once its first read has completed.
+ */
+public class HorizonPlanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(HorizonPlanner.class);
+
+    private static final int SLOT_MINUTES = 30;
+    private static final long REFRESH_MILLIS = 5000;
+
+    private final ClinicBackend clinicBackend;
+    private final SchedulingSettings settings;
+    private final String specialty;
+    private final TreeMap<LocalDate, Map<Integer, DoctorDay>> days = new TreeMap<>();
+    private final Map<Integer, Doctor> doctors = new HashMap<>();
+    private long doctorsLoadedAt;
+    private boolean doctorsLoading;
+
+    public HorizonPlanner(ClinicBackend clinicBackend, SchedulingSettings settings, String specialty) {
+        this.clinicBackend = clinicBackend;
+        this.settings = settings;
+        this.specialty = specialty;
+    }
+
+    /**
+     * Picks a slot for an appointment of the given priority and holds it until it is
+     * handed back with {@link #booked}, {@link #release} or {@link #conflict}. Backend
+     * reads happen outside the lock, so the other schedulers of the specialty keep
+     * reserving from the current model meanwhile.
+     *
+     * @return the slot, or null when the window has no capacity left for this priority
+     */
+    public PlannedSlot reserve(int priority) {
+        roll();
+        while (true) {
+            DoctorDay stale;
+            synchronized (this) {
+                DoctorDay best = pick(priority);
+                if (best == null) {
+                    return null;
+                }
+                if (best.loading || System.currentTimeMillis() - best.loadedAt <= REFRESH_MILLIS) {
+                    int index = best.firstFreeIndex();
+                    best.pending[index] = true;
+                    return new PlannedSlot(best.doctorId, best.date.atTime(best.slots[index]));
+                }
+                best.loading = true;
+                stale = best;
+            }
+            // The re-read may take the slot away, so pick again afterwards.
+            load(stale);
+        }
+    }
+
+    /** Confirms that a reserved slot now holds the booking. */
+    public synchronized void booked(PlannedSlot slot, int priority) {
+        DoctorDay doctorDay = dayOf(slot.doctorId, slot.time.toLocalDate());
+        if (doctorDay != null) {
+            doctorDay.settle(slot.time.toLocalTime());
+            doctorDay.book(slot.time.toLocalTime(), priority);
+        }
+    }
+
+    /** Hands back a slot that was reserved but not booked. */
+    public synchronized void release(PlannedSlot slot) {
+        DoctorDay doctorDay = dayOf(slot.doctorId, slot.time.toLocalDate());
+        if (doctorDay != null) {
+            doctorDay.settle(slot.time.toLocalTime());
+        }
+    }
+
+    /**
+     * Called when a reserved slot turned out to be taken, with the priority of the
+     * booking found there, so the slot is not handed out again.
+     */
+    public synchronized void conflict(PlannedSlot slot, int occupantPriority) {
+        DoctorDay doctorDay = dayOf(slot.doctorId, slot.time.toLocalDate());
+        if (doctorDay != null) {
+            logger.info("Slot {} of doctor {} was taken elsewhere", slot.time, slot.doctorId);
+            doctorDay.settle(slot.time.toLocalTime());
+            doctorDay.book(slot.time.toLocalTime(), occupantPriority);
+        }
+    }
+
+    /** Records a booking made outside the planner, e.g. by an eviction. */
+    public synchronized void markBooked(int doctorId, LocalDateTime time, int priority) {
+        DoctorDay doctorDay = dayOf(doctorId, time.toLocalDate());
+        if (doctorDay != null) {
+            doctorDay.book(time.toLocalTime(), priority);
+        }
+    }
+
+    private DoctorDay pick(int priority) {
+        for (Map<Integer, DoctorDay> doctorDays : days.values()) {
+            DoctorDay best = null;
+            for (DoctorDay doctorDay : doctorDays.values()) {
+                if (doctorDay.loadedAt == 0) {
+                    // Still being read for the first time.
+                    continue;
+                }
+                int free = doctorDay.freeCount();
+                if (priority == 1) {
+                    if (free > 0 && (best == null || doctorDay.firstFree().isBefore(best.firstFree()))) {
+                        best = doctorDay;
+                    }
+                } else if (free > doctorDay.reserve && (best == null || free < best.freeCount())) {
+                    best = doctorDay;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    private void roll() {
+        LocalDate firstDay = LocalDate.now().plusDays(1);
+        LocalDate lastDay = firstDay.plusDays(settings.getPlannerHorizonDays() - 1);
+
+        boolean loadDoctors;
+        synchronized (this) {
+            loadDoctors = !doctorsLoading && System.currentTimeMillis() - doctorsLoadedAt > REFRESH_MILLIS;
+            doctorsLoading |= loadDoctors;
+        }
+        if (loadDoctors) {
+            List<Doctor> loaded = null;
+            try {
+                loaded = clinicBackend.getDoctorsBySpecialty(specialty);
+            } finally {
+                synchronized (this) {
+                    doctorsLoading = false;
+                    if (loaded != null) {
+                        doctors.clear();
+                        for (Doctor doctor : loaded) {
+                            doctors.put(doctor.doctorId, doctor);
+                        }
+                        doctorsLoadedAt = System.currentTimeMillis();
+                    }
+                }
+            }
+        }
+
+        List<DoctorDay> added = new ArrayList<>();
+        synchronized (this) {
+            days.headMap(firstDay).clear();
+            days.tailMap(lastDay, false).clear();
+            for (LocalDate date = firstDay; !date.isAfter(lastDay); date = date.plusDays(1)) {
+                Map<Integer, DoctorDay> doctorDays = days.computeIfAbsent(date, k -> new HashMap<>());
+                doctorDays.keySet().retainAll(doctors.keySet());
+                for (Doctor doctor : doctors.values()) {
+                    if (!doctorDays.containsKey(doctor.doctorId)) {
+                        DoctorDay doctorDay = new DoctorDay(doctor, date);
+                        doctorDay.loading = true;
+                        doctorDays.put(doctor.doctorId, doctorDay);
+                        added.add(doctorDay);
+                    }
+                }
+            }
+        }
+        for (DoctorDay doctorDay : added) {
+            load(doctorDay);
+        }
+    }
+
+    /**
+     * Reads a doctor-day that was marked as loading and merges it into the model. Rows
+     * are never removed from a doctor's calendar, so bookings the model already knows
+     * about are kept even when the read does not show them yet.
+     */
+    private void load(DoctorDay doctorDay) {
+        List<DoctorAppointment> schedule = null;
+        try {
+            schedule = clinicBackend.getDoctorDaySchedule(doctorDay.doctorId, doctorDay.date);
+        } finally {
+            synchronized (this) {
+                doctorDay.loading = false;
+                if (schedule != null) {
+                    for (DoctorAppointment appointment : schedule) {
+                        doctorDay.book(appointment.timeSlot, appointment.priority);
+                    }
+                    doctorDay.reserve = (int) Math.ceil(doctorDay.slots.length * settings.getPriorityOneReserve());
+                    doctorDay.loadedAt = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    private DoctorDay dayOf(int doctorId, LocalDate date) {
+        Map<Integer, DoctorDay> doctorDays = days.get(date);
+        return doctorDays == null ? null : doctorDays.get(doctorId);
+    }
+
+    public static class PlannedSlot {
+        public final int doctorId;
+        public final LocalDateTime time;
+
+        public PlannedSlot(int doctorId, LocalDateTime time) {
+            this.doctorId = doctorId;
+            this.time = time;
+        }
+    }
+
+    private static class DoctorDay {
+        final int doctorId;
+        final LocalDate date;
+        final LocalTime[] slots;
+        /** Priority of the booking in each slot, 0 when nothing is booked there. */
+        final int[] priorities;
+        /** Slots handed out by {@link #reserve} whose booking is still in flight. */
+        final boolean[] pending;
+        int reserve;
+        /** When the day was last read, 0 until the first read completes. */
+        long loadedAt;
+        /** A read of the day is in flight. */
+        boolean loading;
+
+        DoctorDay(Doctor doctor, LocalDate date) {
+            this.doctorId = doctor.doctorId;
+            this.date = date;
+            List<LocalTime> slotTimes = new ArrayList<>();
+            for (LocalTime time = doctor.startHours; !time.plusMinutes(SLOT_MINUTES).isAfter(doctor.endHours); time = time.plusMinutes(SLOT_MINUTES)) {
+                slotTimes.add(time);
+            }
+            this.slots = slotTimes.toArray(new LocalTime[0]);
+            this.priorities = new int[slots.length];
+            this.pending = new boolean[slots.length];
+        }
+
+        void book(LocalTime time, int priority) {
+            int index = indexOf(time);
+            if (index >= 0) {
+                priorities[index] = priority;
+            }
+        }
+
+        void settle(LocalTime time) {
+            int index = indexOf(time);
+            if (index >= 0) {
+                pending[index] = false;
+            }
+        }
+
+        int freeCount() {
+            int free = 0;
+            for (int i = 0; i < slots.length; i++) {
+                if (priorities[i] == 0 && !pending[i]) {
+                    free++;
+                }
+            }
+            return free;
+        }
+
+        int firstFreeIndex() {
+            for (int i = 0; i < slots.length; i++) {
+                if (priorities[i] == 0 && !pending[i]) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        LocalTime firstFree() {
+            return slots[firstFreeIndex()];
+        }
+
+        private int indexOf(LocalTime time) {
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i].equals(time)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package cassdemo.scheduling;
+
+import cassdemo.entities.Appointment;
+
+import java.time.LocalDateTime;
+
+/**
+ * Notified by the scheduler threads after an appointment has been booked and removed
+ * from the pending queue.
+ */
+public interface ScheduleListener {
+    void scheduled(Appointment appointment, LocalDateTime slot);
+}
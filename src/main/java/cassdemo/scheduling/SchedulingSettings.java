@@ -0,0 +1,79 @@
+package cassdemo.scheduling;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tunables shared by the generator and scheduler threads. All of them may be changed
+ * while the threads are running, see {@link cassdemo.admin.ClinicControl}.
+ */
+public class SchedulingSettings {
+    private final List<String> specialties;
+    private volatile long arrivalDelayMillis = 200;
+    private volatile long verifyDelayMillis = 100;
+    private volatile boolean evictionEnabled = true;
+    private volatile boolean plannerEnabled = true;
+    private volatile int plannerHorizonDays = 7;
+    private volatile double priorityOneReserve = 0.2;
+
+    public SchedulingSettings(String[] specialties) {
+        this.specialties = new CopyOnWriteArrayList<>(Arrays.asList(specialties));
+    }
+
+    public List<String> getSpecialties() {
+        return specialties;
+    }
+
+    /** Pause of each generator thread between two generated appointments. */
+    public long getArrivalDelayMillis() {
+        return arrivalDelayMillis;
+    }
+
+    public void setArrivalDelayMillis(long arrivalDelayMillis) {
+        this.arrivalDelayMillis = arrivalDelayMillis;
+    }
+
+    /** Pause between writing an ownership claim or booking and reading it back. */
+    public long getVerifyDelayMillis() {
+        return verifyDelayMillis;
+    }
+
+    public void setVerifyDelayMillis(long verifyDelayMillis) {
+        this.verifyDelayMillis = verifyDelayMillis;
+    }
+
+    public boolean isEvictionEnabled() {
+        return evictionEnabled;
+    }
+
+    public void setEvictionEnabled(boolean evictionEnabled) {
+        this.evictionEnabled = evictionEnabled;
+    }
+
+    /** Whether schedulers take slots from the {@link HorizonPlanner} before searching. */
+    public boolean isPlannerEnabled() {
+        return plannerEnabled;
+    }
+
+    public void setPlannerEnabled(boolean plannerEnabled) {
+        this.plannerEnabled = plannerEnabled;
+    }
+
+    public int getPlannerHorizonDays() {
+        return plannerHorizonDays;
+    }
+
+    public void setPlannerHorizonDays(int plannerHorizonDays) {
+        this.plannerHorizonDays = plannerHorizonDays;
+    }
+
+    /** Share of each doctor-day the planner keeps free for priority 1 appointments. */
+    public double getPriorityOneReserve() {
+        return priorityOneReserve;
+    }
+
+    public void setPriorityOneReserve(double priorityOneReserve) {
+        this.priorityOneReserve = priorityOneReserve;
+    }
+}